@@ -0,0 +1,257 @@
+/**
+ *    Copyright 2019 MetaRing s.r.l.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.metaring.framework.ext.persistence.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import com.metaring.framework.type.DataRepresentation;
+import com.metaring.framework.util.StringUtil;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+final class MongoDBCollectionRegistry {
+
+    private static MongoDBCollectionRegistry INSTANCE;
+
+    private final MongoClient mongoClient;
+    private int users;
+    private final String defaultDatabaseName;
+    private final DataRepresentation collectionsSettings;
+
+    private final Map<String, CollectionSettings> settingsByCollection = new ConcurrentHashMap<>();
+    private final Map<String, MongoDatabase> databases = new ConcurrentHashMap<>();
+    private final Map<String, DB> dbs = new ConcurrentHashMap<>();
+    private final Map<String, MongoCollection<Document>> collections = new ConcurrentHashMap<>();
+    private final Map<String, MongoDBNearCache> nearCaches = new ConcurrentHashMap<>();
+
+    static final synchronized MongoDBCollectionRegistry getInstance(MongoClient mongoClient, DataRepresentation persistenceSettings) {
+        if (INSTANCE == null || INSTANCE.mongoClient != mongoClient) {
+            if (INSTANCE != null) {
+                INSTANCE.stopNearCaches();
+            }
+            MongoDBCollectionRegistry collectionRegistry = new MongoDBCollectionRegistry(mongoClient, persistenceSettings);
+            collectionRegistry.startNearCaches();
+            INSTANCE = collectionRegistry;
+        }
+        INSTANCE.users++;
+        return INSTANCE;
+    }
+
+    static final synchronized void release(MongoDBCollectionRegistry collectionRegistry) {
+        if (--collectionRegistry.users > 0) {
+            return;
+        }
+        collectionRegistry.stopNearCaches();
+        if (INSTANCE == collectionRegistry) {
+            INSTANCE = null;
+        }
+    }
+
+    private MongoDBCollectionRegistry(MongoClient mongoClient, DataRepresentation persistenceSettings) {
+        this.mongoClient = mongoClient;
+        this.defaultDatabaseName = persistenceSettings.getText("database");
+        this.collectionsSettings = persistenceSettings.hasProperty("collections") ? persistenceSettings.get("collections") : null;
+        if (collectionsSettings != null) {
+            for (String key : collectionsSettings.getProperties()) {
+                try {
+                    settingsByCollection.put(key, new CollectionSettings(collectionsSettings.get(key)));
+                }
+                catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid settings for MongoDB collection " + key, e);
+                }
+            }
+        }
+    }
+
+    final MongoDatabase getDatabase(String databaseName) {
+        databaseName = StringUtil.isNullOrEmpty(databaseName) ? defaultDatabaseName : databaseName;
+        if (StringUtil.isNullOrEmpty(databaseName)) {
+            return null;
+        }
+        return databases.computeIfAbsent(databaseName, mongoClient::getDatabase);
+    }
+
+    @SuppressWarnings("deprecation")
+    final DB getDB(String databaseName) {
+        databaseName = StringUtil.isNullOrEmpty(databaseName) ? defaultDatabaseName : databaseName;
+        if (StringUtil.isNullOrEmpty(databaseName)) {
+            return null;
+        }
+        return dbs.computeIfAbsent(databaseName, mongoClient::getDB);
+    }
+
+    final MongoCollection<Document> getCollection(String databaseName, String collectionName) {
+        MongoDatabase database = getDatabase(databaseName);
+        return collections.computeIfAbsent(database.getName() + "." + collectionName, key -> {
+            CollectionSettings settings = settingsByCollection.containsKey(key) ? settingsByCollection.get(key) : settingsByCollection.get(collectionName);
+            return settings == null ? database.getCollection(collectionName) : settings.configure(database.getCollection(collectionName));
+        });
+    }
+
+    final MongoDBNearCache getNearCache(String databaseName, String collectionName) {
+        if (nearCaches.isEmpty()) {
+            return null;
+        }
+        MongoDatabase database = getDatabase(databaseName);
+        return database == null ? null : nearCaches.get(database.getName() + "." + collectionName);
+    }
+
+    private final void startNearCaches() {
+        if (collectionsSettings == null) {
+            return;
+        }
+        try {
+            for (String key : collectionsSettings.getProperties()) {
+                DataRepresentation settings = collectionsSettings.get(key);
+                if (!settings.hasProperty("nearCache")) {
+                    continue;
+                }
+                DataRepresentation nearCacheSettings = settings.get("nearCache");
+                if (!nearCacheSettings.hasProperties() && !settings.getTruth("nearCache")) {
+                    continue;
+                }
+                String databaseName = key.contains(".") ? key.substring(0, key.indexOf(".")) : null;
+                String collectionName = key.substring(key.indexOf(".") + 1);
+                MongoDatabase database = getDatabase(databaseName);
+                String fullName = database.getName() + "." + collectionName;
+                Document filter = null;
+                List<String> indexedFields = new ArrayList<>();
+                if (nearCacheSettings.hasProperties()) {
+                    if (nearCacheSettings.hasProperty("filter")) {
+                        filter = Document.parse(nearCacheSettings.get("filter").toJson());
+                    }
+                    if (nearCacheSettings.hasProperty("indexes")) {
+                        DataRepresentation indexes = nearCacheSettings.get("indexes");
+                        for (int i = 0; i < indexes.length(); i++) {
+                            indexedFields.add(indexes.getText(i));
+                        }
+                    }
+                }
+                MongoDBNearCache nearCache = new MongoDBNearCache(fullName, getCollection(databaseName, collectionName), filter, indexedFields);
+                nearCache.start();
+                nearCaches.put(fullName, nearCache);
+            }
+        }
+        catch (RuntimeException e) {
+            stopNearCaches();
+            throw e;
+        }
+    }
+
+    private final void stopNearCaches() {
+        for (MongoDBNearCache nearCache : nearCaches.values()) {
+            nearCache.stop();
+        }
+        nearCaches.clear();
+    }
+
+    private static final CodecRegistry toCodecRegistry(DataRepresentation codecProviders) {
+        List<CodecProvider> providers = new ArrayList<>();
+        for (int i = 0; i < codecProviders.length(); i++) {
+            String codecProvider = codecProviders.getText(i);
+            try {
+                providers.add((CodecProvider) Class.forName(codecProvider).getDeclaredConstructor().newInstance());
+            }
+            catch (Exception e) {
+                throw new IllegalArgumentException("Unable to instantiate MongoDB CodecProvider " + codecProvider, e);
+            }
+        }
+        return CodecRegistries.fromRegistries(CodecRegistries.fromProviders(providers), MongoClient.getDefaultCodecRegistry());
+    }
+
+    private static final class CollectionSettings {
+
+        private Integer w;
+        private String wTag;
+        private Boolean journal;
+        private Long wTimeout;
+        private final ReadPreference readPreference;
+        private final CodecRegistry codecRegistry;
+
+        private CollectionSettings(DataRepresentation settings) {
+            boolean empty = settings == null || settings.isNull() || !settings.hasProperties();
+            if (!empty && settings.hasProperty("writeConcern")) {
+                DataRepresentation writeConcern = settings.get("writeConcern");
+                if (writeConcern.hasProperty("w")) {
+                    Long w = null;
+                    try {
+                        w = writeConcern.getDigit("w");
+                    }
+                    catch (Exception e) {
+                    }
+                    if (w != null) {
+                        this.w = w.intValue();
+                    }
+                    else {
+                        this.wTag = writeConcern.getText("w");
+                    }
+                }
+                if (writeConcern.hasProperty("j")) {
+                    journal = writeConcern.getTruth("j");
+                }
+                if (writeConcern.hasProperty("wtimeout")) {
+                    wTimeout = writeConcern.getDigit("wtimeout");
+                }
+                toWriteConcern(WriteConcern.ACKNOWLEDGED);
+            }
+            readPreference = !empty && settings.hasProperty("readPreference") ? ReadPreference.valueOf(settings.getText("readPreference")) : null;
+            codecRegistry = !empty && settings.hasProperty("codecProviders") ? toCodecRegistry(settings.get("codecProviders")) : null;
+        }
+
+        private final MongoCollection<Document> configure(MongoCollection<Document> collection) {
+            if (w != null || wTag != null || journal != null || wTimeout != null) {
+                collection = collection.withWriteConcern(toWriteConcern(collection.getWriteConcern()));
+            }
+            if (readPreference != null) {
+                collection = collection.withReadPreference(readPreference);
+            }
+            if (codecRegistry != null) {
+                collection = collection.withCodecRegistry(codecRegistry);
+            }
+            return collection;
+        }
+
+        private final WriteConcern toWriteConcern(WriteConcern writeConcern) {
+            if (w != null) {
+                writeConcern = writeConcern.withW(w);
+            }
+            if (wTag != null) {
+                writeConcern = writeConcern.withW(wTag);
+            }
+            if (journal != null) {
+                writeConcern = writeConcern.withJournal(journal);
+            }
+            if (wTimeout != null) {
+                writeConcern = writeConcern.withWTimeout(wTimeout, TimeUnit.MILLISECONDS);
+            }
+            return writeConcern;
+        }
+    }
+}
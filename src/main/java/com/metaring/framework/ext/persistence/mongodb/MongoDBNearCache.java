@@ -0,0 +1,372 @@
+/**
+ *    Copyright 2019 MetaRing s.r.l.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.metaring.framework.ext.persistence.mongodb;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+final class MongoDBNearCache {
+
+    private static final Logger LOGGER = Logger.getLogger(MongoDBNearCache.class.getName());
+
+    private static final String ID = "_id";
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String name;
+    private final MongoCollection<Document> collection;
+    private final Document filter;
+    private final List<String> indexedFields;
+
+    private volatile Snapshot snapshot;
+    private volatile BsonDocument resumeToken;
+    private volatile boolean current;
+    private volatile boolean running;
+    private volatile int reloads;
+    private Thread watcher;
+
+    MongoDBNearCache(String name, MongoCollection<Document> collection, Document filter, List<String> indexedFields) {
+        this.name = name;
+        this.collection = collection;
+        this.filter = filter == null ? new Document() : filter;
+        this.indexedFields = indexedFields == null ? Collections.<String>emptyList() : indexedFields;
+        for (Map.Entry<String, Object> entry : this.filter.entrySet()) {
+            if (entry.getKey().startsWith("$") || entry.getKey().contains(".") || !isScalar(entry.getValue())) {
+                throw new IllegalArgumentException("Near cache filter of " + name + " must only contain equality conditions on top-level fields");
+            }
+        }
+        this.snapshot = new Snapshot(this.indexedFields);
+    }
+
+    final synchronized void start() {
+        if (running) {
+            return;
+        }
+        resumeToken = null;
+        final MongoCursor<ChangeStreamDocument<Document>> cursor = openCursor();
+        reload();
+        running = true;
+        watcher = new Thread(() -> watch(cursor), "MongoDBNearCache-" + name);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    final void stop() {
+        Thread watcher;
+        synchronized (this) {
+            running = false;
+            current = false;
+            watcher = this.watcher;
+            this.watcher = null;
+        }
+        if (watcher != null) {
+            watcher.interrupt();
+            try {
+                watcher.join(RETRY_MILLIS * 2);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    final int getReloads() {
+        return reloads;
+    }
+
+    final List<Document> find(Document query) {
+        Snapshot snapshot = this.snapshot;
+        if (!current || !isSupported(query)) {
+            return null;
+        }
+        List<Document> result = new ArrayList<>();
+        for (Object id : getCandidates(snapshot, query)) {
+            Document document = snapshot.documents.get(id);
+            if (document != null && matches(document, query)) {
+                result.add(document);
+            }
+        }
+        return result;
+    }
+
+    private final void watch(MongoCursor<ChangeStreamDocument<Document>> cursor) {
+        while (running) {
+            try {
+                if (cursor == null) {
+                    boolean resumable = resumeToken != null;
+                    cursor = openCursor();
+                    if ((!resumable || resumeToken == null) && !reloadIfRunning()) {
+                        break;
+                    }
+                }
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change == null) {
+                    current = true;
+                    continue;
+                }
+                if (!apply(change)) {
+                    cursor.close();
+                    cursor = null;
+                    continue;
+                }
+                resumeToken = change.getResumeToken();
+            }
+            catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                LOGGER.log(Level.WARNING, "Near cache " + name + " lost its change stream, retrying in " + RETRY_MILLIS + "ms", e);
+                current = false;
+                if (cursor != null) {
+                    try {
+                        cursor.close();
+                    }
+                    catch (Exception ex) {
+                    }
+                    cursor = null;
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                }
+                catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+        if (cursor != null) {
+            try {
+                cursor.close();
+            }
+            catch (Exception e) {
+            }
+        }
+    }
+
+    private final MongoCursor<ChangeStreamDocument<Document>> openCursor() {
+        if (resumeToken != null) {
+            try {
+                return collection.watch().fullDocument(FullDocument.UPDATE_LOOKUP).maxAwaitTime(RETRY_MILLIS, TimeUnit.MILLISECONDS).resumeAfter(resumeToken).iterator();
+            }
+            catch (MongoCommandException e) {
+                resumeToken = null;
+            }
+        }
+        return collection.watch().fullDocument(FullDocument.UPDATE_LOOKUP).maxAwaitTime(RETRY_MILLIS, TimeUnit.MILLISECONDS).iterator();
+    }
+
+    private final synchronized boolean reloadIfRunning() {
+        if (running) {
+            reload();
+        }
+        return running;
+    }
+
+    private final synchronized void reload() {
+        current = false;
+        Snapshot snapshot = new Snapshot(indexedFields);
+        for (Document document : collection.find(filter)) {
+            snapshot.put(document);
+        }
+        this.snapshot = snapshot;
+        reloads++;
+    }
+
+    private final boolean apply(ChangeStreamDocument<Document> change) {
+        switch (change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE: {
+                Document document = change.getFullDocument();
+                if (document != null && matches(document, filter)) {
+                    snapshot.put(document);
+                }
+                else {
+                    snapshot.remove(toDocument(change.getDocumentKey()).get(ID));
+                }
+                return true;
+            }
+            case DELETE: {
+                snapshot.remove(toDocument(change.getDocumentKey()).get(ID));
+                return true;
+            }
+            default: {
+                current = false;
+                resumeToken = null;
+                return false;
+            }
+        }
+    }
+
+    private final Collection<Object> getCandidates(Snapshot snapshot, Document query) {
+        if (query.containsKey(ID)) {
+            return Collections.singleton(normalize(query.get(ID)));
+        }
+        for (String indexedField : indexedFields) {
+            if (query.containsKey(indexedField)) {
+                Set<Object> ids = snapshot.indexes.get(indexedField).get(normalize(query.get(indexedField)));
+                return ids == null ? Collections.emptySet() : new ArrayList<>(ids);
+            }
+        }
+        return snapshot.documents.keySet();
+    }
+
+    private final boolean isSupported(Document query) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            if (entry.getKey().startsWith("$") || entry.getKey().contains(".") || !isScalar(entry.getValue())) {
+                return false;
+            }
+            if (entry.getValue() == null && (entry.getKey().equals(ID) || indexedFields.contains(entry.getKey()))) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            if (!query.containsKey(entry.getKey()) || !equals(query.get(entry.getKey()), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final boolean matches(Document document, Document query) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            Object value = document.get(entry.getKey());
+            if (value instanceof List) {
+                if (entry.getValue() == null ? !((List<?>) value).contains(null) : !getValues(document, entry.getKey()).contains(normalize(entry.getValue()))) {
+                    return false;
+                }
+            }
+            else if (!equals(value, entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final List<Object> getValues(Document document, String field) {
+        Object value = document.get(field);
+        List<Object> values = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (element != null) {
+                    values.add(normalize(element));
+                }
+            }
+        }
+        else if (value != null) {
+            values.add(normalize(value));
+        }
+        return values;
+    }
+
+    private static final boolean isScalar(Object value) {
+        return value == null || value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof ObjectId || value instanceof Date;
+    }
+
+    private static final boolean equals(Object first, Object second) {
+        return first == null ? second == null : normalize(first).equals(normalize(second));
+    }
+
+    private static final Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return BigDecimal.valueOf(((Number) value).longValue()).stripTrailingZeros();
+        }
+        if ((value instanceof Double || value instanceof Float) && !Double.isNaN(((Number) value).doubleValue()) && !Double.isInfinite(((Number) value).doubleValue())) {
+            return BigDecimal.valueOf(((Number) value).doubleValue()).stripTrailingZeros();
+        }
+        return value;
+    }
+
+    private static final Document toDocument(BsonDocument bsonDocument) {
+        return new DocumentCodec().decode(new BsonDocumentReader(bsonDocument), DecoderContext.builder().build());
+    }
+
+    private static final class Snapshot {
+
+        private final List<String> indexedFields;
+        private final Map<Object, Document> documents = new ConcurrentHashMap<>();
+        private final Map<String, Map<Object, Set<Object>>> indexes = new ConcurrentHashMap<>();
+
+        private Snapshot(List<String> indexedFields) {
+            this.indexedFields = indexedFields;
+            for (String indexedField : indexedFields) {
+                indexes.put(indexedField, new ConcurrentHashMap<>());
+            }
+        }
+
+        private final synchronized void put(Document document) {
+            Object id = normalize(document.get(ID));
+            for (String indexedField : indexedFields) {
+                for (Object value : getValues(document, indexedField)) {
+                    indexes.get(indexedField).computeIfAbsent(value, key -> ConcurrentHashMap.newKeySet()).add(id);
+                }
+            }
+            Document previous = documents.put(id, document);
+            if (previous != null) {
+                unindex(id, previous, document);
+            }
+        }
+
+        private final synchronized void remove(Object id) {
+            id = normalize(id);
+            Document previous = documents.remove(id);
+            if (previous != null) {
+                unindex(id, previous, null);
+            }
+        }
+
+        private final void unindex(Object id, Document previous, Document current) {
+            for (String indexedField : indexedFields) {
+                Map<Object, Set<Object>> index = indexes.get(indexedField);
+                List<Object> currentValues = current == null ? Collections.<Object>emptyList() : getValues(current, indexedField);
+                for (Object value : getValues(previous, indexedField)) {
+                    if (currentValues.contains(value)) {
+                        continue;
+                    }
+                    Set<Object> ids = index.get(value);
+                    if (ids != null) {
+                        ids.remove(id);
+                        if (ids.isEmpty()) {
+                            index.remove(value, ids);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
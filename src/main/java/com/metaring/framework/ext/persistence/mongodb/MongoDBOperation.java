@@ -0,0 +1,37 @@
+/**
+ *    Copyright 2019 MetaRing s.r.l.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.metaring.framework.ext.persistence.mongodb;
+
+import java.util.function.Consumer;
+
+import org.bson.Document;
+
+import com.metaring.framework.type.DataRepresentation;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Handler of a MongoDB shell operation (e.g. <code>db.collection.operation(...)</code>).
+ * Implementations are discovered through {@link java.util.ServiceLoader} by listing them in
+ * <code>META-INF/services/com.metaring.framework.ext.persistence.mongodb.MongoDBOperation</code>
+ * and take precedence over the built-in handlers with the same (case-insensitive) name.
+ */
+public interface MongoDBOperation {
+
+    String getName();
+
+    void execute(MongoCollection<Document> collection, DataRepresentation parameters, String functionTail, Consumer<DataRepresentation> callback);
+}
@@ -19,10 +19,8 @@ package com.metaring.framework.ext.persistence.mongodb;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
-import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.client.ClientSession;
-import com.mongodb.client.MongoDatabase;
 
 import com.metaring.framework.SysKB;
 import com.metaring.framework.Tools;
@@ -31,7 +29,6 @@ import com.metaring.framework.persistence.OperationResult;
 import com.metaring.framework.persistence.PersistenceController;
 import com.metaring.framework.type.DataRepresentation;
 import com.metaring.framework.type.series.TextSeries;
-import com.metaring.framework.util.StringUtil;
 
 public class MongoDBPersistenceController implements PersistenceController {
 
@@ -39,11 +36,9 @@ public class MongoDBPersistenceController implements PersistenceController {
 
     private MongoClient mongoClient;
     private ClientSession mongoSession;
-    private MongoDatabase defaultDatabase;
-    private DB defaultDB;
+    private MongoDBCollectionRegistry collectionRegistry;
     private boolean normalizeSpecialFields = false;
 
-    @SuppressWarnings("deprecation")
     @Override
     public final CompletableFuture<FunctionalityTransactionController> init(SysKB sysKB, Executor asyncExecutor) {
         final CompletableFuture<FunctionalityTransactionController> response = new CompletableFuture<>();
@@ -61,11 +56,7 @@ public class MongoDBPersistenceController implements PersistenceController {
                 }
                 DataRepresentation persistenceSettings = sysKB.get("persistence");
                 normalizeSpecialFields = persistenceSettings.hasProperty("normalizeSpecialFields") && persistenceSettings.getTruth("normalizeSpecialFields");
-                String databaseName = persistenceSettings.getText("database");
-                if (!StringUtil.isNullOrEmpty(databaseName)) {
-                    defaultDatabase = mongoClient.getDatabase(databaseName);
-                    defaultDB = mongoClient.getDB(databaseName);
-                }
+                collectionRegistry = MongoDBCollectionRegistry.getInstance(mongoClient, persistenceSettings);
                 response.complete(this);
             }
             catch (Throwable e) {
@@ -83,7 +74,10 @@ public class MongoDBPersistenceController implements PersistenceController {
             }
             mongoSession.close();
         }
-        defaultDatabase = null;
+        if(collectionRegistry != null) {
+            MongoDBCollectionRegistry.release(collectionRegistry);
+        }
+        collectionRegistry = null;
         mongoSession = null;
         mongoClient = null;
         return END;
@@ -112,7 +106,7 @@ public class MongoDBPersistenceController implements PersistenceController {
     @Override
     public final CompletableFuture<DataRepresentation> query(String sql, Executor asyncExecutor) {
         final CompletableFuture<DataRepresentation> query = new CompletableFuture<>();
-        MongoDBQueryResolver.resolve(sql, mongoClient, defaultDatabase, defaultDB, asyncExecutor).whenCompleteAsync((result, error) -> {
+        MongoDBQueryResolver.resolve(sql, collectionRegistry, asyncExecutor).whenCompleteAsync((result, error) -> {
             if(error != null) {
                 query.completeExceptionally(error);
             } else {
@@ -125,7 +119,7 @@ public class MongoDBPersistenceController implements PersistenceController {
     @Override
     public final CompletableFuture<OperationResult> update(String sql, Executor asyncExecutor) {
         final CompletableFuture<OperationResult> update = new CompletableFuture<>();
-        MongoDBQueryResolver.resolve(sql, mongoClient, defaultDatabase, defaultDB, asyncExecutor).whenCompleteAsync((result, error) -> {
+        MongoDBQueryResolver.resolve(sql, collectionRegistry, asyncExecutor).whenCompleteAsync((result, error) -> {
             if(error != null) {
                 update.completeExceptionally(error);
             } else {
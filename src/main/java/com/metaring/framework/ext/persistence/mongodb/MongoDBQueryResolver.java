@@ -16,18 +16,31 @@
 
 package com.metaring.framework.ext.persistence.mongodb;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.bson.BsonArray;
 import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
 import org.bson.conversions.Bson;
 
 import com.metaring.framework.Tools;
@@ -36,23 +49,32 @@ import com.metaring.framework.type.DataRepresentation;
 import com.metaring.framework.type.series.TextSeries;
 import com.metaring.framework.util.ObjectUtil;
 import com.mongodb.DB;
-import com.mongodb.MongoClient;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Collation;
 import com.mongodb.client.model.CollationAlternate;
 import com.mongodb.client.model.CollationCaseFirst;
 import com.mongodb.client.model.CollationMaxVariable;
 import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.FindOneAndDeleteOptions;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
-@SuppressWarnings("unused")
 class MongoDBQueryResolver {
 
     private static final Pattern FUNCTION_PARAMETERS_PATTERN = Pattern.compile("(\\((.*?)(\\[?)\\{(.*?)\\}(( |\\n|\\t)*\\{(.*?)\\})*( |\\n|\\t)*(\\]?)\\))", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
@@ -60,36 +82,74 @@ class MongoDBQueryResolver {
     private static final Pattern LIMIT_PATTERN = Pattern.compile(".limit\\((.*?)\\d(.*?)\\)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
     private static final Pattern SKIP_PATTERN = Pattern.compile(".skip\\((.*?)\\d(.*?)\\)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
 
-    private MongoDatabase database;
+    private static final Logger LOGGER = Logger.getLogger(MongoDBQueryResolver.class.getName());
+
+    private static final Map<String, BiConsumer<MongoDBQueryResolver, Consumer<DataRepresentation>>> OPERATIONS;
+
+    static {
+        Map<String, BiConsumer<MongoDBQueryResolver, Consumer<DataRepresentation>>> operations = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        operations.put("find", MongoDBQueryResolver::find);
+        operations.put("findAndModify", MongoDBQueryResolver::findAndModify);
+        operations.put("aggregate", MongoDBQueryResolver::aggregate);
+        operations.put("insert", MongoDBQueryResolver::insert);
+        operations.put("insertOne", MongoDBQueryResolver::insertOne);
+        operations.put("update", MongoDBQueryResolver::update);
+        operations.put("replaceOne", MongoDBQueryResolver::replaceOne);
+        operations.put("save", MongoDBQueryResolver::save);
+        operations.put("remove", MongoDBQueryResolver::remove);
+        operations.put("bulkWrite", MongoDBQueryResolver::bulkWrite);
+        operations.put("countDocuments", MongoDBQueryResolver::countDocuments);
+        operations.put("distinct", MongoDBQueryResolver::distinct);
+        Iterator<MongoDBOperation> providers = ServiceLoader.load(MongoDBOperation.class, MongoDBQueryResolver.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                MongoDBOperation operation = providers.next();
+                String name = operation.getName();
+                if (name == null || name.trim().isEmpty()) {
+                    LOGGER.warning("Skipping MongoDB operation " + operation.getClass().getName() + ": no operation name");
+                    continue;
+                }
+                operations.put(name.trim(), (info, callback) -> operation.execute(info.collection, info.parameters, info.functionTail, callback));
+            }
+            catch (ServiceConfigurationError | LinkageError | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Skipping MongoDB operation provider", e);
+            }
+        }
+        OPERATIONS = Collections.unmodifiableMap(operations);
+    }
+
     private DB db;
     private MongoCollection<Document> collection;
+    private MongoDBNearCache nearCache;
     private String function;
     private String functionTail;
     private DataRepresentation parameters;
 
     @SuppressWarnings("deprecation")
-    protected static final CompletableFuture<DataRepresentation> resolve(String query, MongoClient mongoClient, MongoDatabase defaultDatabase, DB defaultDB, Executor asyncExecutor) {
+    protected static final CompletableFuture<DataRepresentation> resolve(String query, MongoDBCollectionRegistry collectionRegistry, Executor asyncExecutor) {
 
         final CompletableFuture<DataRepresentation> completableFuture = new CompletableFuture<>();
         CompletableFuture.runAsync(() -> {
             String sql = query;
             MongoDBQueryResolver parsedResult = new MongoDBQueryResolver();
 
-            parsedResult.database = defaultDatabase;
-            parsedResult.db = defaultDB;
-
             if (sql.toLowerCase().startsWith("db.")) {
                 sql = sql.substring(3);
             }
 
             String[] toFirstBraceSplit = sql.substring(0, sql.indexOf("(")).split("[.]");
+            String databaseName = null;
             String collectionName = toFirstBraceSplit[0];
             if (toFirstBraceSplit.length > 2) {
-                parsedResult.database = mongoClient.getDatabase(toFirstBraceSplit[0]);
-                parsedResult.db = mongoClient.getDB(toFirstBraceSplit[0]);
+                databaseName = toFirstBraceSplit[0];
                 collectionName = toFirstBraceSplit[1];
             }
 
+            parsedResult.db = collectionRegistry.getDB(databaseName);
+
             if(query.endsWith(";")) {
                 try {
                     String q = query;
@@ -105,7 +165,8 @@ class MongoDBQueryResolver {
                 }
             }
 
-            parsedResult.collection = parsedResult.database.getCollection(collectionName);
+            parsedResult.collection = collectionRegistry.getCollection(databaseName, collectionName);
+            parsedResult.nearCache = collectionRegistry.getNearCache(databaseName, collectionName);
 
             parsedResult.function = sql.substring(sql.indexOf(collectionName) + collectionName.length() + 1);
             parsedResult.function = parsedResult.function.substring(0, parsedResult.function.indexOf("("));
@@ -126,15 +187,33 @@ class MongoDBQueryResolver {
                 }
                 parsedResult.parameters = Tools.FACTORY_DATA_REPRESENTATION.fromJson(matchResult);
             }
+            else {
+                try {
+                    parsedResult.functionTail = sql.substring(sql.indexOf(")") + 1);
+                    String arguments = sql.substring(sql.indexOf("(") + 1, sql.indexOf(")")).trim();
+                    if (!arguments.isEmpty()) {
+                        parsedResult.parameters = Tools.FACTORY_DATA_REPRESENTATION.fromJson("[" + arguments + "]");
+                        if (parsedResult.parameters == null) {
+                            throw new IllegalArgumentException("Unable to parse arguments: " + arguments);
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    completableFuture.completeExceptionally(new RuntimeException("Error while Parsing and invoking MongoDB client", e));
+                    return;
+                }
+            }
 
             if(ObjectUtil.isNullOrEmpty(parsedResult.parameters)) {
                 parsedResult.parameters = Tools.FACTORY_DATA_REPRESENTATION.fromJson("[]");
             }
 
             try {
-                Method method = MongoDBQueryResolver.class.getDeclaredMethod(parsedResult.function, MongoDBQueryResolver.class, Consumer.class);
-                method.setAccessible(true);
-                method.invoke(null, parsedResult, ((Consumer<DataRepresentation>) completableFuture::complete));
+                BiConsumer<MongoDBQueryResolver, Consumer<DataRepresentation>> operation = OPERATIONS.get(parsedResult.function);
+                if (operation == null) {
+                    throw new UnsupportedOperationException("Unsupported MongoDB operation: " + parsedResult.function);
+                }
+                operation.accept(parsedResult, completableFuture::complete);
             } catch (Exception e) {
                 completableFuture.completeExceptionally(new RuntimeException("Error while Parsing and invoking MongoDB client", e));
             }
@@ -144,8 +223,21 @@ class MongoDBQueryResolver {
 
     private static final void find(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
 
-        if (!info.function.equalsIgnoreCase("find")) {
-            throw new UnsupportedOperationException("Wrong 'find' function: " + info.function);
+        Integer limit = getTailValue(LIMIT_PATTERN, info.functionTail);
+        Integer skip = getTailValue(SKIP_PATTERN, info.functionTail);
+
+        if (info.nearCache != null && info.parameters.length() < 2) {
+            List<Document> documents = info.nearCache.find(info.parameters.length() == 0 ? new Document() : toDocument(info.parameters.first()));
+            if (documents != null) {
+                int from = Math.min(skip == null ? 0 : skip, documents.size());
+                int to = limit == null || limit == 0 ? documents.size() : Math.min(from + Math.abs(limit), documents.size());
+                DataRepresentation result = Tools.FACTORY_DATA_REPRESENTATION.create();
+                for (Document document : documents.subList(from, to)) {
+                    result.add(toDataRepresentation(document));
+                }
+                callback.accept(result);
+                return;
+            }
         }
 
         FindIterable<Document> findIterable = null;
@@ -167,17 +259,11 @@ class MongoDBQueryResolver {
             }
         }
 
-        Matcher limitMatcher = LIMIT_PATTERN.matcher(info.functionTail);
-        if (limitMatcher.find()) {
-            String limitMatchResult = limitMatcher.group(0).toLowerCase();
-            int limit = Integer.parseInt(limitMatchResult.substring(limitMatchResult.indexOf("(") + 1, limitMatchResult.indexOf(")")).trim());
+        if (limit != null) {
             findIterable = findIterable.limit(limit);
         }
 
-        Matcher skipMatcher = SKIP_PATTERN.matcher(info.functionTail);
-        if (skipMatcher.find()) {
-            String skipMatchResult = skipMatcher.group(0).toLowerCase();
-            int skip = Integer.parseInt(skipMatchResult.substring(skipMatchResult.indexOf("(") + 1, skipMatchResult.indexOf(")")).trim());
+        if (skip != null) {
             findIterable = findIterable.skip(skip);
         }
 
@@ -188,6 +274,15 @@ class MongoDBQueryResolver {
         callback.accept(result);
     }
 
+    private static final Integer getTailValue(Pattern pattern, String functionTail) {
+        Matcher matcher = pattern.matcher(functionTail);
+        if (!matcher.find()) {
+            return null;
+        }
+        String matchResult = matcher.group(0).toLowerCase();
+        return Integer.parseInt(matchResult.substring(matchResult.indexOf("(") + 1, matchResult.indexOf(")")).trim());
+    }
+
     private static final void findAndModify(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
         DataRepresentation params = info.parameters.first();
         Bson filter = toBson(params.get("query"));
@@ -291,7 +386,10 @@ class MongoDBQueryResolver {
             updateResult = info.collection.updateOne(filter, update, updateOptions);
         }
         DataRepresentation result = null;
-        if (updateResult != null) {
+        if (updateResult != null && !updateResult.wasAcknowledged()) {
+            result = OperationResult.create(0l, Tools.FACTORY_TEXT_SERIES.create()).toDataRepresentation();
+        }
+        else if (updateResult != null) {
             TextSeries keys = Tools.FACTORY_TEXT_SERIES.create();
             try {
                 keys.add(updateResult.getUpsertedId().asObjectId().getValue().toString());
@@ -302,6 +400,128 @@ class MongoDBQueryResolver {
         callback.accept(result);
     }
 
+    private static final void insertOne(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
+        Document document = toDocument(info.parameters.first());
+        info.collection.insertOne(document);
+        TextSeries keys = Tools.FACTORY_TEXT_SERIES.create();
+        keys.add(toKey(document.get("_id")));
+        callback.accept(OperationResult.create(1l, keys).toDataRepresentation());
+    }
+
+    private static final void replaceOne(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
+        Bson filter = toBson(info.parameters.first());
+        Document replacement = toDocument(info.parameters.get(1));
+        ReplaceOptions replaceOptions = new ReplaceOptions();
+        if (info.parameters.length() == 3 && info.parameters.get(2).hasProperty("upsert")) {
+            replaceOptions.upsert(info.parameters.get(2).getTruth("upsert"));
+        }
+        UpdateResult updateResult = info.collection.replaceOne(filter, replacement, replaceOptions);
+        TextSeries keys = Tools.FACTORY_TEXT_SERIES.create();
+        if (!updateResult.wasAcknowledged()) {
+            callback.accept(OperationResult.create(0l, keys).toDataRepresentation());
+            return;
+        }
+        long manipulationNumber = updateResult.getModifiedCount();
+        if (updateResult.getUpsertedId() != null) {
+            keys.add(toKey(updateResult.getUpsertedId()));
+            manipulationNumber++;
+        }
+        callback.accept(OperationResult.create(manipulationNumber, keys).toDataRepresentation());
+    }
+
+    private static final void bulkWrite(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
+        DataRepresentation operations = info.parameters;
+        BulkWriteOptions bulkWriteOptions = new BulkWriteOptions();
+        if (info.parameters.first().hasLength()) {
+            operations = info.parameters.first();
+            if (info.parameters.length() == 2 && info.parameters.get(1).hasProperty("ordered")) {
+                bulkWriteOptions.ordered(info.parameters.get(1).getTruth("ordered"));
+            }
+        }
+        List<WriteModel<Document>> requests = new ArrayList<>();
+        List<Document> insertedDocuments = new ArrayList<>();
+        for (DataRepresentation operation : operations) {
+            requests.add(toWriteModel(operation, insertedDocuments));
+        }
+        BulkWriteResult bulkWriteResult = info.collection.bulkWrite(requests, bulkWriteOptions);
+        TextSeries keys = Tools.FACTORY_TEXT_SERIES.create();
+        if (!bulkWriteResult.wasAcknowledged()) {
+            callback.accept(OperationResult.create(0l, keys).toDataRepresentation());
+            return;
+        }
+        for (Document document : insertedDocuments) {
+            keys.add(toKey(document.get("_id")));
+        }
+        for (BulkWriteUpsert upsert : bulkWriteResult.getUpserts()) {
+            keys.add(toKey(upsert.getId()));
+        }
+        long manipulationNumber = bulkWriteResult.getInsertedCount() + bulkWriteResult.getModifiedCount() + bulkWriteResult.getDeletedCount() + bulkWriteResult.getUpserts().size();
+        callback.accept(OperationResult.create(manipulationNumber, keys).toDataRepresentation());
+    }
+
+    private static final WriteModel<Document> toWriteModel(DataRepresentation operation, List<Document> insertedDocuments) {
+        if (operation.hasProperty("insertOne")) {
+            Document document = toDocument(operation.get("insertOne").get("document"));
+            insertedDocuments.add(document);
+            return new InsertOneModel<>(document);
+        }
+        if (operation.hasProperty("updateOne") || operation.hasProperty("updateMany")) {
+            boolean many = operation.hasProperty("updateMany");
+            DataRepresentation params = operation.get(many ? "updateMany" : "updateOne");
+            UpdateOptions updateOptions = new UpdateOptions();
+            if (params.hasProperty("upsert")) {
+                updateOptions.upsert(params.getTruth("upsert"));
+            }
+            Bson filter = toBson(params.get("filter"));
+            Bson update = toUpdateBson(params.get("update"));
+            return many ? new UpdateManyModel<Document>(filter, update, updateOptions) : new UpdateOneModel<Document>(filter, update, updateOptions);
+        }
+        if (operation.hasProperty("replaceOne")) {
+            DataRepresentation params = operation.get("replaceOne");
+            ReplaceOptions replaceOptions = new ReplaceOptions();
+            if (params.hasProperty("upsert")) {
+                replaceOptions.upsert(params.getTruth("upsert"));
+            }
+            return new ReplaceOneModel<>(toBson(params.get("filter")), toDocument(params.get("replacement")), replaceOptions);
+        }
+        if (operation.hasProperty("deleteOne")) {
+            return new DeleteOneModel<>(toBson(operation.get("deleteOne").get("filter")));
+        }
+        if (operation.hasProperty("deleteMany")) {
+            return new DeleteManyModel<>(toBson(operation.get("deleteMany").get("filter")));
+        }
+        throw new UnsupportedOperationException("Unsupported bulkWrite operation: " + operation.toJson());
+    }
+
+    private static final void countDocuments(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
+        Bson filter = info.parameters.isEmpty() ? new Document() : toBson(info.parameters.first());
+        CountOptions countOptions = new CountOptions();
+        if (info.parameters.length() == 2) {
+            DataRepresentation params = info.parameters.get(1);
+            if (params.hasProperty("limit")) {
+                countOptions.limit(params.getDigit("limit").intValue());
+            }
+            if (params.hasProperty("skip")) {
+                countOptions.skip(params.getDigit("skip").intValue());
+            }
+            if (params.hasProperty("maxTimeMS")) {
+                countOptions.maxTime(params.getDigit("maxTimeMS"), TimeUnit.MILLISECONDS);
+            }
+            if (params.hasProperty("collation")) {
+                countOptions.collation(toCollation(params.get("collation")));
+            }
+        }
+        callback.accept(Tools.FACTORY_DATA_REPRESENTATION.fromJson(String.valueOf(info.collection.countDocuments(filter, countOptions))));
+    }
+
+    private static final void distinct(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
+        String fieldName = info.parameters.getText(0);
+        Bson filter = info.parameters.length() > 1 ? toBson(info.parameters.get(1)) : new Document();
+        BsonArray values = new BsonArray();
+        info.collection.distinct(fieldName, filter, BsonValue.class).into(values);
+        callback.accept(Tools.FACTORY_DATA_REPRESENTATION.fromJson(new BsonDocument("values", values).toJson()).get("values"));
+    }
+
     private static final void save(MongoDBQueryResolver info, Consumer<DataRepresentation> callback) {
         throw new UnsupportedOperationException("Save method not supported by Java version of MongoDB");
     }
@@ -331,7 +551,7 @@ class MongoDBQueryResolver {
             }
         DataRepresentation result = null;
         if (deleteResult != null) {
-            result = OperationResult.create(deleteResult.getDeletedCount(), Tools.FACTORY_TEXT_SERIES.create()).toDataRepresentation();
+            result = OperationResult.create(deleteResult.wasAcknowledged() ? deleteResult.getDeletedCount() : 0l, Tools.FACTORY_TEXT_SERIES.create()).toDataRepresentation();
         }
         callback.accept(result);
     }
@@ -403,6 +623,14 @@ class MongoDBQueryResolver {
 
     }
 
+    private static final String toKey(BsonValue id) {
+        return toKey(new DocumentCodec().decode(new BsonDocumentReader(new BsonDocument("_id", id)), DecoderContext.builder().build()).get("_id"));
+    }
+
+    private static final String toKey(Object id) {
+        return String.valueOf(id);
+    }
+
     private static final DataRepresentation toDataRepresentation(Document document) {
         return Tools.FACTORY_DATA_REPRESENTATION.fromJson(document == null ? "null" : document.toJson());
     }
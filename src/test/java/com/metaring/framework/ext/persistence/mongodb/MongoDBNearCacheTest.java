@@ -0,0 +1,170 @@
+/**
+ *    Copyright 2019 MetaRing s.r.l.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.metaring.framework.ext.persistence.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Runs against a replica set (a local single-node <code>mongod --replSet rs0</code> is enough) whose URI is given
+ * through the <code>metaring.mongodb.uri</code> system property or the <code>METARING_MONGODB_URI</code> environment variable;
+ * skipped otherwise.
+ */
+public class MongoDBNearCacheTest {
+
+    private static final long TIMEOUT_MILLIS = 15000;
+
+    private MongoClient mongoClient;
+    private MongoDatabase database;
+    private MongoCollection<Document> collection;
+    private MongoDBNearCache nearCache;
+
+    @Before
+    public final void setUp() {
+        String uri = System.getProperty("metaring.mongodb.uri", System.getenv("METARING_MONGODB_URI"));
+        assumeTrue("No replica set URI configured", uri != null && !uri.trim().isEmpty());
+        mongoClient = new MongoClient(new MongoClientURI(uri));
+        database = mongoClient.getDatabase("metaring_near_cache_test");
+        collection = database.getCollection("items_" + UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    @After
+    public final void tearDown() {
+        if (nearCache != null) {
+            nearCache.stop();
+        }
+        if (mongoClient != null) {
+            collection.drop();
+            mongoClient.close();
+        }
+    }
+
+    @Test
+    public final void loadsCollectionAtStart() {
+        collection.insertMany(Arrays.asList(new Document("code", "IT"), new Document("code", "FR")));
+        nearCache = start(null, null);
+        assertEquals(2, await(new Document(), it -> it.size() == 2).size());
+    }
+
+    @Test
+    public final void propagatesInsertUpdateAndDelete() {
+        nearCache = start(null, null);
+        await(new Document(), List::isEmpty);
+
+        collection.insertOne(new Document("code", "IT").append("name", "Italy"));
+        assertEquals("Italy", await(new Document("code", "IT"), it -> it.size() == 1).get(0).getString("name"));
+
+        collection.updateOne(Filters.eq("code", "IT"), Updates.set("name", "Italia"));
+        await(new Document("code", "IT"), it -> it.size() == 1 && "Italia".equals(it.get(0).getString("name")));
+
+        collection.deleteOne(Filters.eq("code", "IT"));
+        await(new Document("code", "IT"), List::isEmpty);
+    }
+
+    @Test
+    public final void removesDocumentsLeavingTheFilter() {
+        collection.insertOne(new Document("code", "IT").append("active", true));
+        nearCache = start(new Document("active", true), null);
+        await(new Document("active", true), it -> it.size() == 1);
+
+        collection.updateOne(Filters.eq("code", "IT"), Updates.set("active", false));
+        await(new Document("active", true), List::isEmpty);
+        assertNull(nearCache.find(new Document("code", "IT")));
+    }
+
+    @Test
+    public final void looksUpIndexedFields() {
+        collection.insertMany(Arrays.asList(new Document("code", "IT").append("tags", Arrays.asList("eu", null)), new Document("code", "US")));
+        nearCache = start(null, Arrays.asList("code", "tags"));
+        await(new Document("code", "IT"), it -> it.size() == 1);
+        assertEquals(1, nearCache.find(new Document("tags", "eu")).size());
+
+        collection.updateOne(Filters.eq("code", "IT"), Updates.set("code", "IE"));
+        await(new Document("code", "IE"), it -> it.size() == 1);
+        assertTrue(nearCache.find(new Document("code", "IT")).isEmpty());
+
+        assertNull(nearCache.find(new Document("code", null)));
+        assertNull(nearCache.find(new Document("_id", null)));
+    }
+
+    @Test
+    public final void resumesThroughTheStreamAfterCursorIsKilled() {
+        collection.insertOne(new Document("code", "IT"));
+        nearCache = start(null, null);
+        await(new Document(), it -> it.size() == 1);
+        collection.insertOne(new Document("code", "FR"));
+        await(new Document(), it -> it.size() == 2);
+        assertEquals(1, nearCache.getReloads());
+
+        mongoClient.getDatabase("admin").runCommand(new Document("killAllSessions", Collections.emptyList()));
+
+        collection.insertOne(new Document("code", "DE"));
+        collection.deleteOne(Filters.eq("code", "IT"));
+
+        await(new Document(), it -> it.size() == 2 && it.stream().noneMatch(document -> "IT".equals(document.getString("code"))));
+        assertEquals(1, nearCache.find(new Document("code", "DE")).size());
+        assertEquals("Changes must be applied from the change stream, not by reloading the collection", 1, nearCache.getReloads());
+    }
+
+    private final MongoDBNearCache start(Document filter, List<String> indexedFields) {
+        MongoDBNearCache nearCache = new MongoDBNearCache(collection.getNamespace().getFullName(), collection, filter, indexedFields);
+        nearCache.start();
+        return nearCache;
+    }
+
+    private final List<Document> await(Document query, Predicate<List<Document>> condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        List<Document> result = null;
+        while (System.currentTimeMillis() < deadline) {
+            result = nearCache.find(query);
+            if (result != null && condition.test(result)) {
+                return result;
+            }
+            sleep();
+        }
+        throw new AssertionError("Near cache did not reach the expected state for " + query.toJson() + ", last result: " + result);
+    }
+
+    private static final void sleep() {
+        try {
+            Thread.sleep(100);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}